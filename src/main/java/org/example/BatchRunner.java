@@ -0,0 +1,218 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 在同一个 JVM 中并发执行多个转换任务。
+ * <p>
+ * 所有任务共用固定数量的工作线程，瓦片文件的读写共用同一组 I/O 许可；
+ * 任务出错、被取消或超时都只体现在各自的 {@link JobResult} 中，不会影响其他任务，也不会退出进程。
+ * 取消和超时时，逐瓦片的循环在处理下一个瓦片前停下，正在执行的耗时 SQL 会被中止；已写出的部分文件不会被清理。
+ */
+public class BatchRunner implements AutoCloseable {
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private final Semaphore ioPermits;
+    //尚未结束的任务，close 被中断时据此取消
+    private final Set<JobHandle> unfinished = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param threads   同时运行的任务数
+     * @param ioPermits 所有任务合计可同时进行的瓦片文件读写数
+     */
+    public BatchRunner(int threads, int ioPermits) {
+        if (threads < 1 || ioPermits < 1) {
+            throw new IllegalArgumentException("线程数和 I/O 许可数必须大于 0");
+        }
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "batch-runner-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ioPermits = new Semaphore(ioPermits, true);
+    }
+
+    /**
+     * 提交任务，任务在有空闲线程时开始执行
+     */
+    public JobHandle submit(ConversionJob job) {
+        JobHandle handle = new JobHandle(job, new JobContext(ioPermits));
+        unfinished.add(handle);
+        try {
+            workers.execute(() -> {
+                try {
+                    handle.run(timer);
+                } finally {
+                    unfinished.remove(handle);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            unfinished.remove(handle);
+            throw e;
+        }
+        return handle;
+    }
+
+    /**
+     * 提交全部任务并等待结束，结果顺序与 jobs 一致
+     */
+    public List<JobResult> runAll(List<ConversionJob> jobs) throws InterruptedException {
+        List<JobHandle> handles = new ArrayList<>(jobs.size());
+        for (ConversionJob job : jobs) {
+            handles.add(submit(job));
+        }
+        List<JobResult> results = new ArrayList<>(handles.size());
+        for (JobHandle handle : handles) {
+            results.add(handle.get());
+        }
+        return results;
+    }
+
+    /**
+     * 不再接受新任务，并等待已提交的任务全部结束。
+     * 等待时被中断则取消所有尚未结束的任务，保留中断标记后立即返回，各任务的结果为 CANCELLED。
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                //继续等待尚未结束的任务
+            }
+        } catch (InterruptedException e) {
+            for (JobHandle handle : unfinished) {
+                handle.cancel();
+            }
+            Thread.currentThread().interrupt();
+            //任务可能仍在收尾，此时不关闭计时线程（守护线程），以免正在开始的任务无法登记超时
+            return;
+        }
+        timer.shutdownNow();
+    }
+
+    /**
+     * 已提交任务的句柄，可用于取消任务和获取结果
+     */
+    public static final class JobHandle {
+        private final ConversionJob job;
+        private final JobContext context;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        //以下字段由 this 加锁保护
+        private Thread worker;
+        private boolean finished;
+        private JobResult.Status stopStatus;
+
+        private volatile JobResult result;
+
+        JobHandle(ConversionJob job, JobContext context) {
+            this.job = job;
+            this.context = context;
+        }
+
+        public ConversionJob getJob() {
+            return job;
+        }
+
+        /**
+         * 取消任务，尚未开始的任务不会再执行
+         *
+         * @return 任务已结束或已被取消/超时时返回 false
+         */
+        public boolean cancel() {
+            return stop(JobResult.Status.CANCELLED);
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public JobResult get() throws InterruptedException {
+            done.await();
+            return result;
+        }
+
+        public JobResult get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException("任务尚未结束: " + job.getName());
+            }
+            return result;
+        }
+
+        private synchronized boolean stop(JobResult.Status status) {
+            if (finished || stopStatus != null) {
+                return false;
+            }
+            stopStatus = status;
+            context.cancel();
+            //唤醒等待 I/O 许可的线程
+            if (worker != null) {
+                worker.interrupt();
+            }
+            return true;
+        }
+
+        private void run(ScheduledExecutorService timer) {
+            synchronized (this) {
+                if (stopStatus != null) {
+                    finished = true;
+                    complete(new JobResult(job, stopStatus, null, 0));
+                    return;
+                }
+                worker = Thread.currentThread();
+            }
+
+            ScheduledFuture<?> timeout = null;
+            if (job.getTimeoutMillis() > 0) {
+                timeout = timer.schedule(() -> stop(JobResult.Status.TIMED_OUT), job.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            long start = System.nanoTime();
+            Throwable error = null;
+            try {
+                job.run(context);
+            } catch (Throwable e) {
+                error = e;
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            JobResult.Status status;
+            synchronized (this) {
+                finished = true;
+                worker = null;
+                //清除可能残留的中断标记，避免影响线程池中的下一个任务
+                Thread.interrupted();
+                if (error == null) {
+                    status = JobResult.Status.SUCCEEDED;
+                } else if (stopStatus != null) {
+                    status = stopStatus;
+                } else {
+                    status = JobResult.Status.FAILED;
+                }
+            }
+            complete(new JobResult(job, status, status == JobResult.Status.FAILED ? error : null, elapsedMillis));
+        }
+
+        private void complete(JobResult jobResult) {
+            result = jobResult;
+            done.countDown();
+        }
+    }
+}
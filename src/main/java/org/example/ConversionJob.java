@@ -0,0 +1,94 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 交给 {@link BatchRunner} 执行的一个转换任务，通过静态工厂方法创建。
+ */
+public abstract class ConversionJob {
+
+    private final String name;
+    private long timeoutMillis;
+
+    private ConversionJob(String name) {
+        this.name = name;
+    }
+
+    public static ConversionJob diskToMBTiles(String directoryPath, String mbtilesFile, String format, TileLayout layout, boolean compression) {
+        return new ConversionJob("diskToMBTiles " + directoryPath + " -> " + mbtilesFile) {
+            @Override
+            void run(JobContext context) throws Exception {
+                MBTilesGenerator.diskToMBTiles(directoryPath, mbtilesFile, format, layout, compression, context);
+            }
+        };
+    }
+
+    public static ConversionJob diskToMBTiles(String directoryPath, String mbtilesFile, String format, String scheme, boolean compression) {
+        return diskToMBTiles(directoryPath, mbtilesFile, format, TileLayout.forName(scheme), compression);
+    }
+
+    public static ConversionJob mbtilesToDisk(String mbtilesFile, String format, String directoryPath, TileLayout layout, String callback) {
+        return new ConversionJob("mbtilesToDisk " + mbtilesFile + " -> " + directoryPath) {
+            @Override
+            void run(JobContext context) throws Exception {
+                MBTilesGenerator.mbtilesToDisk(mbtilesFile, format, directoryPath, layout, callback, context);
+            }
+        };
+    }
+
+    public static ConversionJob mbtilesToDisk(String mbtilesFile, String format, String directoryPath, String scheme, String callback) {
+        return mbtilesToDisk(mbtilesFile, format, directoryPath, TileLayout.forName(scheme), callback);
+    }
+
+    public static ConversionJob compress(String mbtilesFile) {
+        return new ConversionJob("compress " + mbtilesFile) {
+            @Override
+            void run(JobContext context) throws Exception {
+                MBTilesGenerator.compressMBTiles(mbtilesFile, context);
+            }
+        };
+    }
+
+    public static ConversionJob merge(String mbtilesFile, String... sources) {
+        List<String> sourceList = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(sources)));
+        return new ConversionJob("merge " + sourceList + " -> " + mbtilesFile) {
+            @Override
+            void run(JobContext context) throws Exception {
+                MBTilesGenerator.mergeMBTiles(mbtilesFile, sourceList, context);
+            }
+        };
+    }
+
+    /**
+     * 设置任务的运行时限，从任务真正开始执行时计时，0 表示不限时。
+     * <p>
+     * 到时后任务在读写下一个瓦片文件或处理下一个压缩分块前停下；合并时的 INSERT ... SELECT
+     * 以及 VACUUM、ANALYZE 等耗时语句会通过 sqlite3_interrupt 立即中止。
+     */
+    public ConversionJob timeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("超时时间不能为负数");
+        }
+        this.timeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    abstract void run(JobContext context) throws Exception;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,140 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 单个转换任务的运行上下文：在逐瓦片的循环中检查取消标记，并让瓦片文件读写共享批量任务的 I/O 许可。
+ * 对耗时的单条 SQL（合并时的 INSERT ... SELECT、VACUUM、ANALYZE 等），任务在执行期间登记语句，
+ * 取消时调用 {@link Statement#cancel()}，sqlite-jdbc 会借此调用 sqlite3_interrupt 中止正在执行的语句；
+ * 登记期间的每条 SQL 都应通过 {@link #execute(Statement, String)} 执行，使语句之间的取消也能被发现。
+ * <p>
+ * 直接调用 {@link MBTilesGenerator} 的静态方法时使用 {@link #NONE}，不限流也不会被取消。
+ */
+final class JobContext {
+
+    static final JobContext NONE = new JobContext(null);
+
+    private final Semaphore ioPermits;
+    private volatile boolean cancelled;
+
+    //当前正在执行的语句，由 this 加锁保护
+    private Statement statement;
+
+    JobContext(Semaphore ioPermits) {
+        this.ioPermits = ioPermits;
+    }
+
+    void cancel() {
+        cancelled = true;
+        //持锁调用 cancel，保证语句在 untrack 之前不会被关闭
+        synchronized (this) {
+            if (statement != null) {
+                try {
+                    statement.cancel();
+                } catch (SQLException e) {
+                    //语句已结束时 cancel 可能失败，任务仍会在下一个检查点停下
+                }
+            }
+        }
+    }
+
+    /**
+     * 登记即将执行耗时 SQL 的语句，执行结束后必须调用 {@link #untrack(Statement)}；任务已取消时直接抛出
+     */
+    void track(Statement statement) {
+        if (this == NONE) {
+            return;
+        }
+        synchronized (this) {
+            checkCancelled();
+            this.statement = statement;
+        }
+    }
+
+    void untrack(Statement statement) {
+        if (this == NONE) {
+            return;
+        }
+        synchronized (this) {
+            if (this.statement == statement) {
+                this.statement = null;
+            }
+        }
+    }
+
+    /**
+     * 在已登记的语句上执行一条 SQL，执行前先检查取消标记。
+     * sqlite3_interrupt 只对正在执行的语句有效，在两条语句之间取消时要靠这里的检查发现。
+     */
+    void execute(Statement statement, String sql) throws SQLException {
+        checkCancelled();
+        statement.execute(sql);
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 任务被取消或超时后抛出 CancellationException，由调用方的 finally 负责关闭连接
+     */
+    void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("任务已取消");
+        }
+    }
+
+    byte[] readAllBytes(Path path) throws IOException {
+        acquireIo();
+        try {
+            return Files.readAllBytes(path);
+        } finally {
+            releaseIo();
+        }
+    }
+
+    /**
+     * 写出瓦片文件，父目录不存在时才创建，避免每个瓦片都检查一次目录
+     */
+    void write(Path path, byte[] data, OpenOption... options) throws IOException {
+        acquireIo();
+        try {
+            try {
+                Files.write(path, data, options);
+            } catch (NoSuchFileException e) {
+                Files.createDirectories(path.getParent());
+                Files.write(path, data, options);
+            }
+        } finally {
+            releaseIo();
+        }
+    }
+
+    private void acquireIo() throws InterruptedIOException {
+        checkCancelled();
+        if (ioPermits == null) {
+            return;
+        }
+        try {
+            ioPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待 I/O 许可时被中断");
+        }
+    }
+
+    private void releaseIo() {
+        if (ioPermits != null) {
+            ioPermits.release();
+        }
+    }
+}
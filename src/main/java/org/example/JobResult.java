@@ -0,0 +1,57 @@
+package org.example;
+
+/**
+ * 单个转换任务的执行结果，任务失败时保存异常而不是退出进程。
+ */
+public final class JobResult {
+
+    public enum Status {
+        SUCCEEDED,
+        FAILED,
+        CANCELLED,
+        TIMED_OUT
+    }
+
+    private final ConversionJob job;
+    private final Status status;
+    private final Throwable error;
+    private final long elapsedMillis;
+
+    JobResult(ConversionJob job, Status status, Throwable error, long elapsedMillis) {
+        this.job = job;
+        this.status = status;
+        this.error = error;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public ConversionJob getJob() {
+        return job;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status == Status.SUCCEEDED;
+    }
+
+    /**
+     * 失败时为任务抛出的异常，其余状态为 null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * 任务实际运行的毫秒数，未开始就被取消时为 0
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return job.getName() + ": " + status + (error != null ? " (" + error + ")" : "") + ", " + elapsedMillis + "ms";
+    }
+}
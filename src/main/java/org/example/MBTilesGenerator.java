@@ -23,15 +23,10 @@ import java.util.zip.Inflater;
 
 public class MBTilesGenerator {
 
-    private static int flipY(int zoom, int y) {
-        return (int) (Math.pow(2, zoom) - 1) - y;
-    }
-
-    private static void createMBTilesTables(String databasePath) {
-        String url = "jdbc:sqlite:" + databasePath;
+    private static final Pattern GRID_CALLBACK = Pattern.compile("[\\w\\s=+-/]+\\((\\{(.|\\n)*})\\);?");
 
-        try (Connection conn = DriverManager.getConnection(url);
-             Statement stmt = conn.createStatement()) {
+    private static void createMBTilesTables(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
             stmt.execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB);");
             stmt.execute("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row);");
 
@@ -42,72 +37,60 @@ public class MBTilesGenerator {
             stmt.execute("CREATE TABLE grids (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, grid BLOB);");
 
             stmt.execute("CREATE TABLE grid_data (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, key_name TEXT, key_json TEXT);");
-        } catch (SQLException e) {
-            System.out.println(e.getMessage());
         }
     }
 
-    private static Connection connectToMBTiles(String mbtilesFile) {
+    private static Connection connectToMBTiles(String mbtilesFile) throws SQLException {
         String url = "jdbc:sqlite:" + mbtilesFile;
-        Connection connection = null;
-
-        try {
-            connection = DriverManager.getConnection(url);
-        } catch (SQLException e) {
-            System.out.println(e.getMessage());
-        }
-
-        return connection;
+        return DriverManager.getConnection(url);
     }
 
-    private static void optimizeConnection(Connection connection) {
-        try {
-            Statement statement = connection.createStatement();
+    private static void optimizeConnection(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
             statement.execute("PRAGMA synchronous=0");
             statement.execute("PRAGMA locking_mode=EXCLUSIVE");
             statement.execute("PRAGMA journal_mode=DELETE");
-            statement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
-    private static void compressionPrepare(Connection connection) {
-        try {
-            Statement statement = connection.createStatement();
-            statement.execute("CREATE TABLE IF NOT EXISTS images (tile_data blob, tile_id integer)");
-            statement.execute("CREATE TABLE IF NOT EXISTS map (zoom_level integer, tile_column integer, tile_row integer, tile_id integer)");
-            statement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private static void compressionPrepare(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            //tiles 仍是数据表时，images、map 只可能是之前中断的压缩留下的残余，重新生成
+            statement.execute("DROP TABLE IF EXISTS images");
+            statement.execute("DROP TABLE IF EXISTS map");
+            statement.execute("CREATE TABLE images (tile_data blob, tile_id integer)");
+            statement.execute("CREATE TABLE map (zoom_level integer, tile_column integer, tile_row integer, tile_id integer)");
         }
     }
 
-    private static void optimizeDatabase(Connection connection) {
-        try {
-            Statement statement = connection.createStatement();
-            statement.execute("ANALYZE;");
-            connection.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
-            statement.execute("VACUUM;");
-            //恢复默认隔离等级
-            connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
-            statement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private static void optimizeDatabase(Connection connection, JobContext context) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            //ANALYZE、VACUUM 在大库上耗时很长，登记后可被取消
+            context.track(statement);
+            try {
+                context.execute(statement, "ANALYZE;");
+                connection.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+                context.execute(statement, "VACUUM;");
+                //恢复默认隔离等级
+                connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            } finally {
+                context.untrack(statement);
+            }
         }
     }
 
-    private static void compressionDo(Connection connection, int chunk) {
-        try {
-            Statement statement = connection.createStatement();
+    private static void compressionDo(Connection connection, int chunk, JobContext context) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
             int overlapping = 0;
             int unique = 0;
             int total = 0;
 
-            ResultSet totalTiles = statement.executeQuery("SELECT COUNT(zoom_level) FROM tiles");
+            //按 rowid 分块，合并时 INSERT OR REPLACE 会让 rowid 不再连续，因此以最大 rowid 而不是行数为上界
+            ResultSet totalTiles = statement.executeQuery("SELECT MAX(rowid) FROM tiles");
             int totalTilesCount = totalTiles.getInt(1);
             int lastId = 0;
             for (int i = 0; i < (totalTilesCount / chunk + 1); i++) {
+                context.checkCancelled();
                 List<String> files = new ArrayList<>();
                 List<Integer> ids = new ArrayList<>();
                 PreparedStatement selectStatement = connection.prepareStatement("SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles WHERE rowid > ? AND rowid <= ?");
@@ -147,54 +130,65 @@ public class MBTilesGenerator {
                 rows.close();
                 selectStatement.close();
             }
-
-            statement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
-    private static void compressionFinalize(Connection connection) {
-        try {
-            Statement statement = connection.createStatement();
-
-            statement.executeUpdate("DROP TABLE IF EXISTS tiles");
-            statement.executeUpdate("CREATE VIEW tiles AS SELECT map.zoom_level AS zoom_level, map.tile_column AS tile_column, map.tile_row AS tile_row, images.tile_data AS tile_data FROM map JOIN images ON images.tile_id = map.tile_id");
-
-            statement.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS map_index ON map (zoom_level, tile_column, tile_row)");
-            statement.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS images_id ON images (tile_id)");
-
-
-            connection.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
-            statement.executeUpdate("VACUUM");
-            connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED); // reset default value of isolation level
-
-            statement.executeUpdate("ANALYZE");
-
-            statement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private static void compressionFinalize(Connection connection, JobContext context) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            context.track(statement);
+            try {
+                //先建唯一索引，数据有问题时在删除 tiles 之前就失败
+                context.execute(statement, "CREATE UNIQUE INDEX IF NOT EXISTS map_index ON map (zoom_level, tile_column, tile_row)");
+                context.execute(statement, "CREATE UNIQUE INDEX IF NOT EXISTS images_id ON images (tile_id)");
+
+                context.execute(statement, "DROP TABLE IF EXISTS tiles");
+                context.execute(statement, "CREATE VIEW tiles AS SELECT map.zoom_level AS zoom_level, map.tile_column AS tile_column, map.tile_row AS tile_row, images.tile_data AS tile_data FROM map JOIN images ON images.tile_id = map.tile_id");
+            } finally {
+                context.untrack(statement);
+            }
         }
     }
 
-    private static List<String> getDirs(String path) {
-        List<String> directories = new ArrayList<>();
-        File dir = new File(path);
-
-        if (dir.exists() && dir.isDirectory()) {
-            File[] files = dir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        directories.add(file.getName());
-                    }
-                }
+    /**
+     * 对 tiles 去重压缩，整个过程在一个事务中完成，取消或出错时回滚，tiles 原表保持不变。
+     * VACUUM、ANALYZE 不能在事务中执行，由调用方随后通过 optimizeDatabase 完成。
+     * tiles 已经是视图时说明之前的压缩已提交（例如在随后的 VACUUM 中被取消），直接跳过。
+     */
+    private static void compressTiles(Connection connection, JobContext context) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT type FROM sqlite_master WHERE name = 'tiles'");
+             ResultSet rs = statement.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("MBTiles 中没有 tiles 表");
+            }
+            if ("view".equals(rs.getString(1))) {
+                System.out.println("tiles 已经压缩过，跳过压缩");
+                return;
             }
-        } else {
-            throw new RuntimeException("指定目录不存在");
         }
 
-        return directories;
+        connection.setAutoCommit(false);
+        try {
+            compressionPrepare(connection);
+            compressionDo(connection, 256, context);
+            compressionFinalize(connection, context);
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            rollback(connection, e);
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * 回滚事务；语句被 sqlite3_interrupt 中止时 SQLite 可能已自动回滚，此时回滚失败不应掩盖原异常
+     */
+    private static void rollback(Connection connection, Exception cause) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            cause.addSuppressed(e);
+        }
     }
 
     private static byte[] compressData(String data) throws IOException {
@@ -239,13 +233,152 @@ public class MBTilesGenerator {
         return outputStream.toString();
     }
 
+    /**
+     * 按布局逐层扫描瓦片目录并写入 MBTiles，语句只预编译一次，坐标解析复用同一个 Tile
+     */
+    private static final class DiskScanner implements AutoCloseable {
+        private final TileLayout layout;
+        private final String imageFormat;
+        private final JobContext context;
+        private final TileLayout.Tile tile = new TileLayout.Tile();
+        private final PreparedStatement tileStatement;
+        private final PreparedStatement gridStatement;
+        private final PreparedStatement gridDataStatement;
+
+        DiskScanner(Connection con, TileLayout layout, String imageFormat, JobContext context) throws SQLException {
+            this.layout = layout;
+            this.imageFormat = imageFormat;
+            this.context = context;
+            this.tileStatement = con.prepareStatement("INSERT INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+            this.gridStatement = con.prepareStatement("INSERT INTO grids (zoom_level, tile_column, tile_row, grid) VALUES (?, ?, ?, ?)");
+            this.gridDataStatement = con.prepareStatement("INSERT INTO grid_data (zoom_level, tile_column, tile_row, key_name, key_json) VALUES (?, ?, ?, ?, ?)");
+        }
+
+        /**
+         * 扫描第 level 层目录，z、x、y 为上层目录解析出的坐标
+         */
+        void scan(File directory, int level, int z, int x, int y) throws SQLException, IOException {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            boolean leaf = level == layout.depth();
+            for (File file : files) {
+                String name = file.getName();
+                tile.set(z, x, y);
+                //先按名称解析，只有名称符合布局的目录才需要再查询文件类型
+                if (!leaf) {
+                    if (layout.parseDirectory(level, name, tile) && file.isDirectory()) {
+                        scan(file, level + 1, tile.z, tile.x, tile.y);
+                    }
+                    continue;
+                }
+
+                //以第一个 '.' 分隔文件名和扩展名；不再单独判断 isFile，同名目录会在读取时报错
+                int dot = name.indexOf('.');
+                int end = dot < 0 ? name.length() : dot;
+                boolean image = hasExtension(name, dot, imageFormat);
+                boolean grid = !image && hasExtension(name, dot, "grid.json");
+                if ((!image && !grid) || !layout.parseFile(name, end, tile)) {
+                    continue;
+                }
+
+                byte[] file_content = context.readAllBytes(file.toPath());
+                if (image) {
+                    tileStatement.setInt(1, tile.z);
+                    tileStatement.setInt(2, tile.x);
+                    tileStatement.setInt(3, tile.y);
+                    tileStatement.setBytes(4, file_content);
+                    tileStatement.executeUpdate();
+                } else {
+                    insertGrid(file_content);
+                }
+            }
+        }
+
+        private static boolean hasExtension(String name, int dot, String ext) {
+            return dot >= 0 && name.length() - dot - 1 == ext.length() && name.startsWith(ext, dot + 1);
+        }
+
+        private void insertGrid(byte[] file_content) throws SQLException, IOException {
+            String file_content_utf8 = new String(file_content, StandardCharsets.UTF_8);
+            Matcher matcher = GRID_CALLBACK.matcher(file_content_utf8);
+            if (matcher.find()) {
+                file_content_utf8 = matcher.group(1);
+            }
+
+            JSONObject utfgrid = JSONObject.parseObject(file_content_utf8);
+            JSONObject data = utfgrid.getJSONObject("data");
+            utfgrid.remove("data");
+
+            byte[] compressbytes = compressData(utfgrid.toJSONString());
+
+            gridStatement.setInt(1, tile.z);
+            gridStatement.setInt(2, tile.x);
+            gridStatement.setInt(3, tile.y);
+            gridStatement.setBytes(4, compressbytes);
+            gridStatement.executeUpdate();
+
+            for (String key_name : utfgrid.keySet()) {
+                if (key_name.isEmpty()) {
+                    continue;
+                }
+                JSONObject keyJson = data.getJSONObject(key_name);
+
+                gridDataStatement.setInt(1, tile.z);
+                gridDataStatement.setInt(2, tile.x);
+                gridDataStatement.setInt(3, tile.y);
+                gridDataStatement.setString(4, key_name);
+                gridDataStatement.setString(5, keyJson.toJSONString());
+                gridDataStatement.executeUpdate();
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            tileStatement.close();
+            gridStatement.close();
+            gridDataStatement.close();
+        }
+    }
+
+    private static boolean hasTable(Connection connection, String schema, String name) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM " + schema + ".sqlite_master WHERE name = ?")) {
+            statement.setString(1, name);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() && rs.getInt(1) > 0;
+            }
+        }
+    }
+
     public static void diskToMBTiles(String directoryPath, String mbtilesFile, String format, String scheme, boolean compression) throws SQLException {
-        Connection con = null;
+        diskToMBTiles(directoryPath, mbtilesFile, format, TileLayout.forName(scheme), compression);
+    }
+
+    public static void diskToMBTiles(String directoryPath, String mbtilesFile, String format, TileLayout layout, boolean compression) throws SQLException {
         try {
-            con = connectToMBTiles(mbtilesFile);
-            Statement stmt = con.createStatement();
+            diskToMBTiles(directoryPath, mbtilesFile, format, layout, compression, JobContext.NONE);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 供批量任务调用，出错时直接抛出而不是退出进程
+     */
+    static void diskToMBTiles(String directoryPath, String mbtilesFile, String format, TileLayout layout, boolean compression, JobContext context) throws SQLException, IOException {
+        File root = new File(directoryPath);
+        if (!root.isDirectory()) {
+            throw new FileNotFoundException("指定目录不存在: " + directoryPath);
+        }
+
+        try (Connection con = connectToMBTiles(mbtilesFile);
+             Statement stmt = con.createStatement()) {
             optimizeConnection(con);
-            createMBTilesTables(mbtilesFile);
+            createMBTilesTables(con);
             String imageFormat = format != null ? format : "png";
 
             try {
@@ -261,178 +394,93 @@ public class MBTilesGenerator {
                 e.printStackTrace();
             }
 
-            int count = 0;
-            long startTime = System.currentTimeMillis();
-
-            List<String> dirs = getDirs(directoryPath);
-
-            for (String dir : dirs)
-            {
-                int z=0,y=0,x=0;
-                if (scheme.equals("ags"))
-                {
-                    z = Integer.parseInt(dir.replace("L", ""));
-                }
-                else if (scheme.equals("gwc"))
-                {
-                    z = Integer.parseInt(dir.substring(dir.length() - 2));
-                }
-                else
-                {
-                    z = Integer.parseInt(dir);
-                }
+            try (DiskScanner scanner = new DiskScanner(con, layout, imageFormat, context)) {
+                scanner.scan(root, 0, 0, 0, 0);
+            }
 
-                //获取目录中的子目录
-                List<String> childDirectory = getDirs(directoryPath + File.separator + dir);
+            if (compression) {
+                compressTiles(con, context);
+            }
 
-                if (childDirectory != null)
-                {
-                    for (String rowDir : childDirectory) {
-                        if (scheme.equals("ags"))
-                        {
-                            y=flipY(z,Integer.parseInt(rowDir.replace("R", ""), 16));
-                        }
-                        else if (scheme.equals("gwc"))
-                        {
-                            ;
-                        }
-                        else if (scheme.equals("zyx"))
-                        {
-                            y=flipY(z,Integer.parseInt(rowDir));
-                        }
-                        else
-                        {
-                            x=Integer.parseInt(rowDir);
-                        }
-
-                        File directory = new File(directoryPath, dir + File.separator + rowDir);
-                        File[] files = directory.listFiles();
-
-                        for (File current_file : files)
-                        {
-                            //获取文件名和扩展名
-                            String[] parts = current_file.getName().split("\\.", 2);
-                            String file_name=parts[0];
-                            String ext=(parts.length > 1) ? parts[1] : "";
-                            //对文件进行读取
-                            Path filePath = Paths.get(directoryPath, dir, rowDir, current_file.getName());
-
-                            //文件内容
-                            byte[] file_content = Files.readAllBytes(filePath);
-
-                            if (scheme.equals("xyz"))
-                            {
-                                y=flipY(z,Integer.parseInt(file_name));
-                            }
-                            else if (scheme.equals("ags"))
-                            {
-                                x=Integer.parseInt(file_name.replace("C", ""), 16);
-                            }
-                            else if (scheme.equals("gwc"))
-                            {
-                                x=Integer.parseInt(file_name.split("_")[0]);
-                                y=Integer.parseInt(file_name.split("_")[1]);
-                            }
-                            else if (scheme.equals("zyx"))
-                            {
-                                x=Integer.parseInt(file_name);
-                            }
-                            else
-                            {
-                                y=Integer.parseInt(file_name);
-                            }
-
-                            //图像处理
-                            if (ext.equals(imageFormat))
-                            {
-                                String sql = "INSERT INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)";
-                                PreparedStatement pst = con.prepareStatement(sql);
-                                pst.setInt(1,z);
-                                pst.setInt(2,x);
-                                pst.setInt(3,y);
-                                pst.setBytes(4,file_content);
-                                pst.executeUpdate();
-                                pst.close();
-                            }
-                            else if (ext.equals("grid.json"))
-                            {
-                                String file_content_utf8 = new String(file_content, StandardCharsets.UTF_8);
-                                Pattern pattern = Pattern.compile("[\\w\\s=+-/]+\\((\\{(.|\\n)*})\\);?");
-                                Matcher matcher = pattern.matcher(file_content_utf8);
-                                if (matcher.find()) {
-                                    file_content_utf8 = matcher.group(1);
-                                }
-
-                                JSONObject utfgrid = JSONObject.parseObject(file_content_utf8);
-                                JSONObject data = utfgrid.getJSONObject("data");
-                                utfgrid.remove("data");
-
-                                byte[] compressbytes = compressData(utfgrid.toJSONString());
-
-                                String sql = "INSERT INTO grids (zoom_level, tile_column, tile_row, grid) VALUES (?, ?, ?, ?)";
-                                PreparedStatement pst = con.prepareStatement(sql);
-                                pst.setInt(1,z);
-                                pst.setInt(2,x);
-                                pst.setInt(3,y);
-                                pst.setBytes(4,compressbytes);
-
-                                pst.executeUpdate();
-                                pst.close();
-
-                                ArrayList<String> gridKeys = new ArrayList<>();
-                                for (String key : utfgrid.keySet()) {
-                                    if (!key.isEmpty())
-                                    {
-                                        gridKeys.add(key);
-                                    }
-                                }
-
-                                for (String key_name : gridKeys)
-                                {
-                                    JSONObject keyJson = data.getJSONObject(key_name);
-
-                                    String insertSql = "INSERT INTO grid_data (zoom_level, tile_column, tile_row, key_name, key_json) VALUES (?, ?, ?, ?, ?)";
-
-                                    PreparedStatement pst2 = con.prepareStatement(insertSql);
-
-                                    pst2.setInt(1,z);
-                                    pst2.setInt(2,x);
-                                    pst2.setInt(3,y);
-                                    pst2.setString(4,key_name);
-                                    pst2.setString(5,keyJson.toJSONString());
-                                    pst2.executeUpdate();
-                                }
-
-                            }
-
-                        }
+            optimizeDatabase(con, context);
+        }
+    }
 
-                    }
-                }
+    /**
+     * 对已有的 MBTiles 做去重压缩，压缩后 tiles 变为视图；中途取消或失败时原 tiles 表保持不变，可以直接重试
+     */
+    static void compressMBTiles(String mbtilesFile, JobContext context) throws SQLException {
+        try (Connection con = connectToMBTiles(mbtilesFile)) {
+            optimizeConnection(con);
+            compressTiles(con, context);
+            optimizeDatabase(con, context);
+        }
+    }
 
+    /**
+     * 把多个 MBTiles 依次合并到 mbtilesFile，后合并的瓦片和 grid 覆盖先前的同坐标数据，元数据以先写入的为准。
+     * 目标文件不存在时会新建，目标不能是压缩过的 MBTiles。
+     */
+    static void mergeMBTiles(String mbtilesFile, List<String> sources, JobContext context) throws SQLException, IOException {
+        for (String source : sources) {
+            if (!new File(source).isFile()) {
+                throw new FileNotFoundException("待合并的文件不存在: " + source);
             }
+        }
 
-            if (compression) {
-                compressionPrepare(con);
-                compressionDo(con, 256);
-                compressionFinalize(con);
+        try (Connection con = connectToMBTiles(mbtilesFile);
+             Statement stmt = con.createStatement();
+             PreparedStatement attach = con.prepareStatement("ATTACH DATABASE ? AS source")) {
+            optimizeConnection(con);
+            if (!hasTable(con, "main", "tiles")) {
+                createMBTilesTables(con);
             }
 
-            optimizeDatabase(con);
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-            System.exit(1);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
+            //INSERT ... SELECT 可能涉及上百万行，登记语句以便取消时中止
+            context.track(stmt);
             try {
-                if (con != null) {
-                    con.close();
+                for (String source : sources) {
+                    context.checkCancelled();
+                    attach.setString(1, source);
+                    attach.execute();
+                    try {
+                        mergeSource(con, stmt, context);
+                    } finally {
+                        stmt.execute("DETACH DATABASE source");
+                    }
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
+            } finally {
+                context.untrack(stmt);
             }
+
+            optimizeDatabase(con, context);
+        }
+    }
+
+    /**
+     * 在一个事务中把已 ATTACH 为 source 的库合并到主库
+     */
+    private static void mergeSource(Connection con, Statement stmt, JobContext context) throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            context.execute(stmt, "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) SELECT zoom_level, tile_column, tile_row, tile_data FROM source.tiles");
+            context.execute(stmt, "INSERT OR IGNORE INTO metadata (name, value) SELECT name, value FROM source.metadata");
+            //grids 与 grid_data 没有唯一索引，先删除目标中与来源同坐标的 grid 及其键值，使来源整体覆盖
+            if (hasTable(con, "source", "grids")) {
+                context.execute(stmt, "DELETE FROM grids WHERE (zoom_level, tile_column, tile_row) IN (SELECT zoom_level, tile_column, tile_row FROM source.grids)");
+                context.execute(stmt, "DELETE FROM grid_data WHERE (zoom_level, tile_column, tile_row) IN (SELECT zoom_level, tile_column, tile_row FROM source.grids)");
+                context.execute(stmt, "INSERT INTO grids (zoom_level, tile_column, tile_row, grid) SELECT zoom_level, tile_column, tile_row, grid FROM source.grids");
+            }
+            if (hasTable(con, "source", "grid_data")) {
+                context.execute(stmt, "DELETE FROM grid_data WHERE (zoom_level, tile_column, tile_row, key_name) IN (SELECT zoom_level, tile_column, tile_row, key_name FROM source.grid_data)");
+                context.execute(stmt, "INSERT INTO grid_data (zoom_level, tile_column, tile_row, key_name, key_json) SELECT zoom_level, tile_column, tile_row, key_name, key_json FROM source.grid_data");
+            }
+            con.commit();
+        } catch (SQLException | RuntimeException e) {
+            rollback(con, e);
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
         }
     }
 
@@ -468,10 +516,24 @@ public class MBTilesGenerator {
     }
 
     public static void mbtilesToDisk(String mbtilesFile,String format, String directoryPath,String scheme,String callbackarg) {
-        Connection con = null;
+        mbtilesToDisk(mbtilesFile, format, directoryPath, TileLayout.forName(scheme), callbackarg);
+    }
+
+    public static void mbtilesToDisk(String mbtilesFile,String format, String directoryPath,TileLayout layout,String callbackarg) {
         try {
-            con = connectToMBTiles(mbtilesFile);
-            Statement stmt = con.createStatement();
+            mbtilesToDisk(mbtilesFile, format, directoryPath, layout, callbackarg, JobContext.NONE);
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 供批量任务调用，出错时直接抛出而不是退出进程
+     */
+    static void mbtilesToDisk(String mbtilesFile,String format, String directoryPath,TileLayout layout,String callbackarg, JobContext context) throws SQLException, IOException {
+        try (Connection con = connectToMBTiles(mbtilesFile);
+             Statement stmt = con.createStatement()) {
             JSONObject metadata = new JSONObject();
 
             Path directory_path = Paths.get(directoryPath);
@@ -514,7 +576,13 @@ public class MBTilesGenerator {
             }
 
 
-            //处理层级数据
+            //处理层级数据，路径前缀只拼接一次，之后每个瓦片在其后截断重用
+            StringBuilder tilePath = new StringBuilder(directory_path.toString()).append('/');
+            int prefixLength = tilePath.length();
+            String ext = format != null ? format : "png";
+            //布局无法表示的瓦片（如 quadkey 的 0 级）不写出，只计数
+            int skipped = 0;
+
             ResultSet tiles = stmt.executeQuery("SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles");
             while (tiles.next()) {
                 int z = tiles.getInt("zoom_level");
@@ -522,50 +590,16 @@ public class MBTilesGenerator {
                 int y = tiles.getInt("tile_row");
 
                 //对坐标进行转换
-
-                Path tile_dir;
-                if (scheme.equals("xyz"))
-                {
-                    y=flipY(z,y);
-                    tile_dir=directory_path.resolve(String.valueOf(z)).resolve(String.valueOf(x));
-                }
-                else if (scheme.equals("wms"))
-                {
-                    tile_dir = Paths.get(directoryPath,
-                            String.format("%02d", z),
-                            String.format("%03d", x / 1000000),
-                            String.format("%03d", (x / 1000) % 1000),
-                            String.format("%03d", x % 1000),
-                            String.format("%03d", y / 1000000),
-                            String.format("%03d", (y / 1000) % 1000));
-                }
-                else
-                {
-                    tile_dir=directory_path.resolve(String.valueOf(z)).resolve(String.valueOf(x));
-                }
-
-                //如果不存在则创建该目录
-                if (!Files.isDirectory(tile_dir))
-                {
-                    Files.createDirectories(tile_dir);
-                }
-
-                Path tile;
-                if (scheme.equals("wms"))
-                {
-                    tile = Paths.get(String.format("%s/%03d.%s", tile_dir, y % 1000, format != null ? format : "png"));
-                }
-                else
-                {
-                    tile=Paths.get(String.format("%s/%d.%s", tile_dir, y, format != null ? format : "png"));
+                tilePath.setLength(prefixLength);
+                if (!layout.appendPath(tilePath, z, x, y)) {
+                    skipped++;
+                    continue;
                 }
+                tilePath.append('.').append(ext);
 
                 byte[] tileData1 = tiles.getBytes("tile_data");
-                Files.write(tile,tileData1);
+                context.write(Paths.get(tilePath.toString()), tileData1);
                 done++;
-
-
-
             }
 
             //对grid格式进行处理
@@ -578,6 +612,9 @@ public class MBTilesGenerator {
                 count = countResult.getInt(1);
             }
 
+            String query = "SELECT key_name, key_json FROM grid_data WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+            PreparedStatement pstmt = con.prepareStatement(query);
+
             // 获取 grids 表中的数据
             ResultSet gridsResult = stmt.executeQuery("select zoom_level, tile_column, tile_row, grid from grids;");
             while (gridsResult.next()) {
@@ -587,31 +624,21 @@ public class MBTilesGenerator {
                 // 获取 grid 的数据，这里假设 grid 的数据类型为 Blob 或 byte[]
                 byte[] gridData = gridsResult.getBytes("grid");
                 // 处理 grid 数据
+                tilePath.setLength(prefixLength);
+                if (!layout.appendPath(tilePath, zoomLevel, tileColumn, y)) {
+                    skipped++;
+                    continue;
+                }
+                tilePath.append(".grid.json");
+                Path grid = Paths.get(tilePath.toString());
 
-                String query = "SELECT key_name, key_json FROM grid_data WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
-                PreparedStatement pstmt = con.prepareStatement(query);
                 // 设置查询参数
-                pstmt.setInt(1, zoomLevel); // 假设 zoomLevel 是一个变量，代表要查询的 zoom_level
-                pstmt.setInt(2, tileColumn); // 假设 tileColumn 是一个变量，代表要查询的 tile_column
-                pstmt.setInt(3, y); // 假设 tileRow 是一个变量，代表要查询的 tile_row
+                pstmt.setInt(1, zoomLevel);
+                pstmt.setInt(2, tileColumn);
+                pstmt.setInt(3, y);
 
                 ResultSet gridDataResult = pstmt.executeQuery();
 
-
-
-                if (scheme.equals("xyz"))
-                {
-                    y=flipY(zoomLevel,y);
-                }
-                Path grid_dir=directory_path.resolve(String.valueOf(zoomLevel)).resolve(String.valueOf(tileColumn));
-
-                if (!Files.isDirectory(grid_dir))
-                {
-                    Files.createDirectories(grid_dir);
-                }
-
-                Path grid = grid_dir.resolve(y + ".grid.json");
-
                 String grid_json = decompressToJSON(gridData);
 
                 JSONObject grid_json_obj = JSONObject.parseObject(grid_json);
@@ -624,32 +651,26 @@ public class MBTilesGenerator {
                     // 处理获取到的数据
                     data.put(keyName,JSONObject.parseObject(keyJson));
                 }
+                gridDataResult.close();
 
                 grid_json_obj.put("data",data);
 
                 if (callback==null)
                 {
-                    Files.write(grid,JSON.toJSONString(grid_json_obj).getBytes(), StandardOpenOption.CREATE);
+                    context.write(grid,JSON.toJSONString(grid_json_obj).getBytes(), StandardOpenOption.CREATE);
                 }
                 else
                 {
                     String content = callback + "(" + JSON.toJSONString(grid_json_obj) + ");";
-                    Files.write(grid,content.getBytes());
+                    context.write(grid,content.getBytes());
                 }
                 done++;
 
             }
+            pstmt.close();
 
-        } catch (SQLException | IOException e) {
-            e.printStackTrace();
-            System.exit(1);
-        } finally {
-            try {
-                if (con != null) {
-                    con.close();
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
+            if (skipped > 0) {
+                System.out.println("跳过 " + skipped + " 个无法用该布局表示的瓦片");
             }
         }
     }
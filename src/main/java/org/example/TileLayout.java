@@ -0,0 +1,449 @@
+package org.example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 瓦片目录布局：负责把磁盘上的目录/文件名解析为瓦片坐标，以及把坐标格式化为相对路径。
+ * <p>
+ * 所有坐标都以 MBTiles 的约定表示，即 tile_row 以左下角为原点（TMS），
+ * 各布局在解析和输出时自行完成 y 的翻转。
+ * <p>
+ * 解析时按字符逐个处理，不产生临时字符串；内置布局为无状态单例，可在多线程间共享。
+ * 自定义布局可通过 {@link #register(String, TileLayout)} 注册后按名称使用。
+ */
+public abstract class TileLayout {
+
+    /**
+     * 解析过程中使用的可变坐标，扫描时每个目录层级复用同一个实例。
+     */
+    public static final class Tile {
+        public int z;
+        public int x;
+        public int y;
+
+        void set(int z, int x, int y) {
+            this.z = z;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Map<String, TileLayout> LAYOUTS = new ConcurrentHashMap<>();
+
+    public static final TileLayout XYZ = new XyzLayout(true);
+    public static final TileLayout TMS = new XyzLayout(false);
+    public static final TileLayout ZYX = new ZyxLayout();
+    public static final TileLayout AGS = new AgsLayout();
+    public static final TileLayout GWC = new GwcLayout();
+    public static final TileLayout WMS = new WmsLayout();
+    public static final TileLayout QUADKEY = new QuadkeyLayout();
+
+    static {
+        LAYOUTS.put("xyz", XYZ);
+        LAYOUTS.put("tms", TMS);
+        LAYOUTS.put("zyx", ZYX);
+        LAYOUTS.put("ags", AGS);
+        LAYOUTS.put("gwc", GWC);
+        LAYOUTS.put("wms", WMS);
+        LAYOUTS.put("quadkey", QUADKEY);
+    }
+
+    /**
+     * 注册自定义布局，同名布局会被覆盖
+     */
+    public static void register(String name, TileLayout layout) {
+        if (name == null || layout == null) {
+            throw new IllegalArgumentException("布局名称和布局不能为空");
+        }
+        LAYOUTS.put(name, layout);
+    }
+
+    /**
+     * 移除已注册的布局，主要供测试清理使用
+     */
+    static void unregister(String name) {
+        LAYOUTS.remove(name);
+    }
+
+    /**
+     * 按名称获取布局，名称为空或未注册时按 tms 处理（与原先 scheme 的默认分支一致）
+     */
+    public static TileLayout forName(String name) {
+        if (name == null) {
+            return TMS;
+        }
+        TileLayout layout = LAYOUTS.get(name);
+        return layout != null ? layout : TMS;
+    }
+
+    /**
+     * 文件所在的目录层数（不含文件名本身）
+     */
+    public abstract int depth();
+
+    /**
+     * 解析第 level 层（从 0 开始）目录名，结果写回 tile；tile 中已带有上层目录解析出的值。
+     *
+     * @return 目录名不符合该布局时返回 false，扫描时跳过该目录
+     */
+    public abstract boolean parseDirectory(int level, String name, Tile tile);
+
+    /**
+     * 解析文件名中 [0, end) 部分（即第一个 '.' 之前），结果写回 tile。
+     *
+     * @return 文件名不符合该布局时返回 false，扫描时跳过该文件
+     */
+    public abstract boolean parseFile(String name, int end, Tile tile);
+
+    /**
+     * 追加瓦片相对路径（不含扩展名），目录间以 '/' 分隔；y 为 MBTiles 中的 tile_row
+     *
+     * @return 该瓦片无法用此布局表示时返回 false，此时不追加任何内容
+     */
+    public abstract boolean appendPath(StringBuilder path, int z, int x, int y);
+
+    public static int flipY(int zoom, int y) {
+        return ((1 << zoom) - 1) - y;
+    }
+
+    /**
+     * 解析 [from, to) 之间的十进制数字，非法或溢出时返回 -1
+     */
+    protected static int parseDecimal(CharSequence s, int from, int to) {
+        if (from >= to) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * 解析 [from, to) 之间的十六进制数字（大小写均可），非法或溢出时返回 -1
+     */
+    protected static int parseHex(CharSequence s, int from, int to) {
+        if (from >= to || to - from > 8) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value < 0 ? -1 : value;
+    }
+
+    /**
+     * 追加十进制数字，不足 width 位时左侧补 0
+     */
+    protected static void appendDecimal(StringBuilder path, int value, int width) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < width; i++) {
+            path.append('0');
+        }
+        path.append(value);
+    }
+
+    /**
+     * 追加固定 width 位的小写十六进制数字
+     */
+    protected static void appendHex(StringBuilder path, int value, int width) {
+        for (int shift = (width - 1) * 4; shift >= 0; shift -= 4) {
+            path.append(HEX[(value >>> shift) & 0xf]);
+        }
+    }
+
+    /**
+     * xyz / tms：z/x/y，xyz 的 y 以左上角为原点
+     */
+    private static final class XyzLayout extends TileLayout {
+        private final boolean flip;
+
+        XyzLayout(boolean flip) {
+            this.flip = flip;
+        }
+
+        @Override
+        public int depth() {
+            return 2;
+        }
+
+        @Override
+        public boolean parseDirectory(int level, String name, Tile tile) {
+            int value = parseDecimal(name, 0, name.length());
+            if (level == 0) {
+                tile.z = value;
+            } else {
+                tile.x = value;
+            }
+            return value >= 0;
+        }
+
+        @Override
+        public boolean parseFile(String name, int end, Tile tile) {
+            int y = parseDecimal(name, 0, end);
+            tile.y = flip ? flipY(tile.z, y) : y;
+            return y >= 0;
+        }
+
+        @Override
+        public boolean appendPath(StringBuilder path, int z, int x, int y) {
+            path.append(z).append('/').append(x).append('/').append(flip ? flipY(z, y) : y);
+            return true;
+        }
+    }
+
+    /**
+     * zyx：z/y/x，y 以左上角为原点
+     */
+    private static final class ZyxLayout extends TileLayout {
+        @Override
+        public int depth() {
+            return 2;
+        }
+
+        @Override
+        public boolean parseDirectory(int level, String name, Tile tile) {
+            int value = parseDecimal(name, 0, name.length());
+            if (level == 0) {
+                tile.z = value;
+            } else {
+                tile.y = flipY(tile.z, value);
+            }
+            return value >= 0;
+        }
+
+        @Override
+        public boolean parseFile(String name, int end, Tile tile) {
+            tile.x = parseDecimal(name, 0, end);
+            return tile.x >= 0;
+        }
+
+        @Override
+        public boolean appendPath(StringBuilder path, int z, int x, int y) {
+            path.append(z).append('/').append(flipY(z, y)).append('/').append(x);
+            return true;
+        }
+    }
+
+    /**
+     * ArcGIS 紧凑前的松散缓存：Lzz/Rhhhhhhhh/Chhhhhhhh，行列为十六进制，y 以左上角为原点
+     */
+    private static final class AgsLayout extends TileLayout {
+        @Override
+        public int depth() {
+            return 2;
+        }
+
+        @Override
+        public boolean parseDirectory(int level, String name, Tile tile) {
+            if (level == 0) {
+                int from = name.length() > 0 && name.charAt(0) == 'L' ? 1 : 0;
+                tile.z = parseDecimal(name, from, name.length());
+                return tile.z >= 0;
+            }
+            int from = name.length() > 0 && name.charAt(0) == 'R' ? 1 : 0;
+            int row = parseHex(name, from, name.length());
+            tile.y = flipY(tile.z, row);
+            return row >= 0;
+        }
+
+        @Override
+        public boolean parseFile(String name, int end, Tile tile) {
+            int from = end > 0 && name.charAt(0) == 'C' ? 1 : 0;
+            tile.x = parseHex(name, from, end);
+            return tile.x >= 0;
+        }
+
+        @Override
+        public boolean appendPath(StringBuilder path, int z, int x, int y) {
+            path.append('L');
+            appendDecimal(path, z, 2);
+            path.append("/R");
+            appendHex(path, flipY(z, y), 8);
+            path.append("/C");
+            appendHex(path, x, 8);
+            return true;
+        }
+    }
+
+    /**
+     * GeoWebCache：{gridset}_zz/{halfx}_{halfy}/{x}_{y}，y 以左下角为原点
+     */
+    private static final class GwcLayout extends TileLayout {
+        private static final String GRIDSET = "EPSG_900913_";
+
+        @Override
+        public int depth() {
+            return 2;
+        }
+
+        @Override
+        public boolean parseDirectory(int level, String name, Tile tile) {
+            if (level == 0) {
+                tile.z = name.length() < 2 ? -1 : parseDecimal(name, name.length() - 2, name.length());
+                return tile.z >= 0;
+            }
+            //中间目录只用于分散文件，坐标完全由文件名给出
+            return true;
+        }
+
+        @Override
+        public boolean parseFile(String name, int end, Tile tile) {
+            int sep = -1;
+            for (int i = 0; i < end; i++) {
+                if (name.charAt(i) == '_') {
+                    sep = i;
+                    break;
+                }
+            }
+            if (sep < 0) {
+                return false;
+            }
+            tile.x = parseDecimal(name, 0, sep);
+            tile.y = parseDecimal(name, sep + 1, end);
+            return tile.x >= 0 && tile.y >= 0;
+        }
+
+        @Override
+        public boolean appendPath(StringBuilder path, int z, int x, int y) {
+            //与 GeoWebCache 的 FilePathGenerator 保持一致
+            int shift = z / 2;
+            long half = 2L << shift;
+            int digits = 1;
+            for (long h = half; h >= 10; h /= 10) {
+                digits++;
+            }
+            path.append(GRIDSET);
+            appendDecimal(path, z, 2);
+            path.append('/');
+            appendDecimal(path, (int) (x / half), digits);
+            path.append('_');
+            appendDecimal(path, (int) (y / half), digits);
+            path.append('/');
+            appendDecimal(path, x, 2 * digits);
+            path.append('_');
+            appendDecimal(path, y, 2 * digits);
+            return true;
+        }
+    }
+
+    /**
+     * wms：zz/xxx/xxx/xxx/yyy/yyy/yyy，x、y 每三位一级，y 以左下角为原点
+     */
+    private static final class WmsLayout extends TileLayout {
+        @Override
+        public int depth() {
+            return 6;
+        }
+
+        @Override
+        public boolean parseDirectory(int level, String name, Tile tile) {
+            int value = parseDecimal(name, 0, name.length());
+            if (value < 0) {
+                return false;
+            }
+            if (level == 0) {
+                tile.z = value;
+            } else if (level == 1) {
+                tile.x = value;
+            } else if (level <= 3) {
+                tile.x = tile.x * 1000 + value;
+            } else if (level == 4) {
+                tile.y = value;
+            } else {
+                tile.y = tile.y * 1000 + value;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean parseFile(String name, int end, Tile tile) {
+            int value = parseDecimal(name, 0, end);
+            tile.y = tile.y * 1000 + value;
+            return value >= 0;
+        }
+
+        @Override
+        public boolean appendPath(StringBuilder path, int z, int x, int y) {
+            appendDecimal(path, z, 2);
+            path.append('/');
+            appendDecimal(path, x / 1000000, 3);
+            path.append('/');
+            appendDecimal(path, (x / 1000) % 1000, 3);
+            path.append('/');
+            appendDecimal(path, x % 1000, 3);
+            path.append('/');
+            appendDecimal(path, y / 1000000, 3);
+            path.append('/');
+            appendDecimal(path, (y / 1000) % 1000, 3);
+            path.append('/');
+            appendDecimal(path, y % 1000, 3);
+            return true;
+        }
+    }
+
+    /**
+     * quadkey：所有瓦片平铺在根目录下，文件名为 Bing 风格的四叉树键，层级即键长，y 以左上角为原点。
+     * 0 级瓦片的键为空串，无法用该布局表示，导出时会被跳过。
+     */
+    private static final class QuadkeyLayout extends TileLayout {
+        @Override
+        public int depth() {
+            return 0;
+        }
+
+        @Override
+        public boolean parseDirectory(int level, String name, Tile tile) {
+            return false;
+        }
+
+        @Override
+        public boolean parseFile(String name, int end, Tile tile) {
+            if (end == 0 || end > 30) {
+                return false;
+            }
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < end; i++) {
+                int digit = name.charAt(i) - '0';
+                if (digit < 0 || digit > 3) {
+                    return false;
+                }
+                x = (x << 1) | (digit & 1);
+                y = (y << 1) | (digit >> 1);
+            }
+            tile.z = end;
+            tile.x = x;
+            tile.y = flipY(end, y);
+            return true;
+        }
+
+        @Override
+        public boolean appendPath(StringBuilder path, int z, int x, int y) {
+            if (z == 0) {
+                return false;
+            }
+            int row = flipY(z, y);
+            for (int i = z - 1; i >= 0; i--) {
+                path.append((char) ('0' + (((x >> i) & 1) | (((row >> i) & 1) << 1))));
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.example;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BatchRunnerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int countTiles(File mbtiles) throws SQLException {
+        return count(mbtiles.getPath(), "tiles");
+    }
+
+    private static int count(String mbtiles, String table) throws SQLException {
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + mbtiles);
+             Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * 建一个只含 grid 的小 MBTiles，grids 中每个坐标带上 keys 中列出的键
+     */
+    private static void createGridSource(String mbtiles, String grid, int[][] tiles, String... keys) throws SQLException {
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + mbtiles);
+             Statement stmt = con.createStatement()) {
+            stmt.execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+            stmt.execute("CREATE TABLE metadata (name TEXT, value TEXT)");
+            stmt.execute("CREATE TABLE grids (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, grid BLOB)");
+            stmt.execute("CREATE TABLE grid_data (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, key_name TEXT, key_json TEXT)");
+            for (int[] tile : tiles) {
+                String where = tile[0] + ", " + tile[1] + ", " + tile[2];
+                stmt.execute("INSERT INTO grids VALUES (" + where + ", '" + grid + "')");
+                for (String key : keys) {
+                    stmt.execute("INSERT INTO grid_data VALUES (" + where + ", '" + key + "', '{}')");
+                }
+            }
+        }
+    }
+
+    private String path(String name) {
+        return new File(folder.getRoot(), name).getPath();
+    }
+
+    @Test
+    public void runsJobsConcurrentlyAndReportsFailures() throws Exception {
+        List<ConversionJob> jobs = Arrays.asList(
+                ConversionJob.diskToMBTiles("testdata", path("a.mbtiles"), "png", "xyz", false),
+                ConversionJob.diskToMBTiles("testdata", path("b.mbtiles"), "png", "tms", true),
+                ConversionJob.diskToMBTiles(path("missing"), path("c.mbtiles"), "png", "xyz", false));
+
+        List<JobResult> results;
+        try (BatchRunner runner = new BatchRunner(3, 4)) {
+            results = runner.runAll(jobs);
+        }
+
+        assertEquals(JobResult.Status.SUCCEEDED, results.get(0).getStatus());
+        assertEquals(JobResult.Status.SUCCEEDED, results.get(1).getStatus());
+        assertEquals(JobResult.Status.FAILED, results.get(2).getStatus());
+        assertNotNull(results.get(2).getError());
+        assertEquals(countTiles(new File(path("a.mbtiles"))), countTiles(new File(path("b.mbtiles"))));
+    }
+
+    @Test
+    public void exportsCompressesAndMerges() throws Exception {
+        try (BatchRunner runner = new BatchRunner(2, 2)) {
+            JobResult ingest = runner.submit(ConversionJob.diskToMBTiles("testdata", path("src.mbtiles"), "png", "xyz", false)).get();
+            assertTrue(ingest.toString(), ingest.isSuccess());
+
+            List<JobResult> results = runner.runAll(Arrays.asList(
+                    ConversionJob.mbtilesToDisk(path("src.mbtiles"), "png", path("export"), "xyz", null),
+                    ConversionJob.merge(path("merged.mbtiles"), path("src.mbtiles"), path("src.mbtiles"))));
+            for (JobResult result : results) {
+                assertTrue(result.toString(), result.isSuccess());
+            }
+
+            JobResult compress = runner.submit(ConversionJob.compress(path("merged.mbtiles"))).get();
+            assertTrue(compress.toString(), compress.isSuccess());
+        }
+
+        int tiles = countTiles(new File(path("src.mbtiles")));
+        assertTrue(tiles > 0);
+        assertEquals(tiles, countTiles(new File(path("merged.mbtiles"))));
+        assertTrue(new File(path("export/14/13377/9244.png")).isFile());
+    }
+
+    @Test
+    public void mergeReplacesOverlappingGrids() throws Exception {
+        createGridSource(path("a.mbtiles"), "a", new int[][]{{1, 0, 0}}, "x", "y");
+        createGridSource(path("b.mbtiles"), "b", new int[][]{{1, 0, 0}, {1, 1, 0}}, "x");
+
+        JobResult result;
+        try (BatchRunner runner = new BatchRunner(1, 1)) {
+            result = runner.submit(ConversionJob.merge(path("merged.mbtiles"), path("a.mbtiles"), path("a.mbtiles"), path("b.mbtiles"))).get();
+        }
+        assertTrue(result.toString(), result.isSuccess());
+
+        String merged = path("merged.mbtiles");
+        assertEquals(2, count(merged, "grids"));
+        assertEquals(1, count(merged, "grids WHERE CAST(grid AS TEXT) = 'b' AND tile_column = 0"));
+        //b 中 (1,0,0) 只有键 x，a 留下的键 y 应随 grid 一起被替换
+        assertEquals(2, count(merged, "grid_data"));
+        assertEquals(0, count(merged, "grid_data WHERE key_name = 'y'"));
+    }
+
+    @Test
+    public void cancelledCompressCanBeRetried() throws Exception {
+        String source = path("src.mbtiles");
+        try (BatchRunner runner = new BatchRunner(1, 1)) {
+            JobResult ingest = runner.submit(ConversionJob.diskToMBTiles("testdata", source, "png", "xyz", false)).get();
+            assertTrue(ingest.toString(), ingest.isSuccess());
+            int tiles = countTiles(new File(source));
+
+            //不同的时限让压缩停在不同阶段
+            long[] timeouts = {1, 5, 20, 50, 100};
+            for (long timeout : timeouts) {
+                String copy = path("compress-" + timeout + ".mbtiles");
+                Files.copy(Paths.get(source), Paths.get(copy));
+
+                JobResult first = runner.submit(ConversionJob.compress(copy).timeout(timeout, TimeUnit.MILLISECONDS)).get();
+                if (!first.isSuccess()) {
+                    assertEquals(first.toString(), JobResult.Status.TIMED_OUT, first.getStatus());
+                    assertEquals(tiles, count(copy, "tiles"));
+                    JobResult retry = runner.submit(ConversionJob.compress(copy)).get();
+                    assertTrue(retry.toString(), retry.isSuccess());
+                }
+                assertEquals(tiles, count(copy, "tiles"));
+                assertEquals(tiles, count(copy, "(SELECT DISTINCT zoom_level, tile_column, tile_row FROM tiles)"));
+                assertEquals(1, count(copy, "sqlite_master WHERE name = 'tiles' AND type = 'view'"));
+            }
+        }
+    }
+
+    @Test
+    public void cancelInterruptsRunningStatement() throws Exception {
+        JobContext context = new JobContext(null);
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = con.createStatement()) {
+            context.track(stmt);
+            Thread canceller = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                context.cancel();
+            });
+            canceller.start();
+
+            long start = System.nanoTime();
+            try {
+                stmt.executeQuery("WITH RECURSIVE c(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM c WHERE x < 2000000000) SELECT COUNT(*) FROM c");
+                fail("语句应被中止");
+            } catch (SQLException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("interrupt"));
+            } finally {
+                context.untrack(stmt);
+                canceller.join();
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+        }
+    }
+
+    @Test
+    public void cancelBetweenStatementsStopsNextStatement() throws Exception {
+        JobContext context = new JobContext(null);
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = con.createStatement()) {
+            context.track(stmt);
+            try {
+                context.execute(stmt, "CREATE TABLE t (x INTEGER)");
+                //此时没有正在执行的语句，sqlite3_interrupt 不起作用
+                context.cancel();
+                try {
+                    context.execute(stmt, "INSERT INTO t VALUES (1)");
+                    fail("取消后不应再执行语句");
+                } catch (CancellationException expected) {
+                }
+            } finally {
+                context.untrack(stmt);
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM t")) {
+                assertEquals(0, rs.getInt(1));
+            }
+        }
+    }
+
+    @Test
+    public void interruptedCloseCancelsUnfinishedJobs() throws Exception {
+        String source = path("big.mbtiles");
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + source);
+             Statement stmt = con.createStatement()) {
+            stmt.execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+            stmt.execute("CREATE TABLE metadata (name TEXT, value TEXT)");
+            stmt.execute("INSERT INTO tiles WITH RECURSIVE c(x) AS (SELECT 0 UNION ALL SELECT x + 1 FROM c WHERE x < 499999) "
+                    + "SELECT 20, x, x, randomblob(16) FROM c");
+        }
+
+        BatchRunner runner = new BatchRunner(1, 1);
+        BatchRunner.JobHandle running = runner.submit(ConversionJob.merge(path("a.mbtiles"), source));
+        BatchRunner.JobHandle queued = runner.submit(ConversionJob.merge(path("b.mbtiles"), source));
+        Thread.currentThread().interrupt();
+        try {
+            runner.close();
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertEquals(JobResult.Status.CANCELLED, running.get().getStatus());
+        assertEquals(JobResult.Status.CANCELLED, queued.get().getStatus());
+        assertFalse(new File(path("b.mbtiles")).exists());
+    }
+
+    @Test
+    public void cancelsAndTimesOutJobs() throws Exception {
+        try (BatchRunner runner = new BatchRunner(1, 1)) {
+            BatchRunner.JobHandle slow = runner.submit(
+                    ConversionJob.diskToMBTiles("testdata", path("slow.mbtiles"), "png", "xyz", false).timeout(1, TimeUnit.MILLISECONDS));
+            BatchRunner.JobHandle queued = runner.submit(
+                    ConversionJob.diskToMBTiles("testdata", path("queued.mbtiles"), "png", "xyz", false));
+            assertTrue(queued.cancel());
+
+            assertEquals(JobResult.Status.TIMED_OUT, slow.get().getStatus());
+            JobResult cancelled = queued.get();
+            assertEquals(JobResult.Status.CANCELLED, cancelled.getStatus());
+            assertEquals(0, cancelled.getElapsedMillis());
+            assertFalse(new File(path("queued.mbtiles")).exists());
+        }
+    }
+}
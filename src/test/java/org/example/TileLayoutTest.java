@@ -0,0 +1,120 @@
+package org.example;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class TileLayoutTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 按布局把相对路径逐层解析回坐标
+     */
+    private static TileLayout.Tile parse(TileLayout layout, String path) {
+        String[] parts = path.split("/");
+        assertEquals(layout.depth() + 1, parts.length);
+        TileLayout.Tile tile = new TileLayout.Tile();
+        for (int level = 0; level < layout.depth(); level++) {
+            assertTrue(parts[level], layout.parseDirectory(level, parts[level], tile));
+        }
+        String name = parts[parts.length - 1];
+        int dot = name.indexOf('.');
+        assertTrue(name, layout.parseFile(name, dot < 0 ? name.length() : dot, tile));
+        return tile;
+    }
+
+    private static String format(TileLayout layout, int z, int x, int y) {
+        StringBuilder path = new StringBuilder();
+        assertTrue(layout.appendPath(path, z, x, y));
+        return path.toString();
+    }
+
+    private static void assertRoundTrip(TileLayout layout, int z, int x, int y) {
+        TileLayout.Tile tile = parse(layout, format(layout, z, x, y) + ".png");
+        assertEquals(z, tile.z);
+        assertEquals(x, tile.x);
+        assertEquals(y, tile.y);
+    }
+
+    @Test
+    public void roundTrip() {
+        TileLayout[] layouts = {TileLayout.XYZ, TileLayout.TMS, TileLayout.ZYX, TileLayout.AGS,
+                TileLayout.GWC, TileLayout.WMS, TileLayout.QUADKEY};
+        for (TileLayout layout : layouts) {
+            assertRoundTrip(layout, 1, 1, 0);
+            assertRoundTrip(layout, 14, 13377, 7139);
+            assertRoundTrip(layout, 22, 3000123, 1234567);
+        }
+    }
+
+    @Test
+    public void paths() {
+        assertEquals("14/13377/9244", format(TileLayout.XYZ, 14, 13377, 7139));
+        assertEquals("14/13377/7139", format(TileLayout.TMS, 14, 13377, 7139));
+        assertEquals("14/9244/13377", format(TileLayout.ZYX, 14, 13377, 7139));
+        assertEquals("L14/R0000241c/C00003441", format(TileLayout.AGS, 14, 13377, 7139));
+        assertEquals("EPSG_900913_14/052_027/013377_007139", format(TileLayout.GWC, 14, 13377, 7139));
+        assertEquals("14/000/013/377/000/007/139", format(TileLayout.WMS, 14, 13377, 7139));
+        assertEquals("0213", format(TileLayout.QUADKEY, 4, 3, 10));
+    }
+
+    @Test
+    public void quadkeyCannotRepresentZoomZero() {
+        StringBuilder path = new StringBuilder("tiles/");
+        assertFalse(TileLayout.QUADKEY.appendPath(path, 0, 0, 0));
+        assertEquals("tiles/", path.toString());
+    }
+
+    @Test
+    public void exportSkipsUnrepresentableTiles() throws Exception {
+        String mbtiles = new File(folder.getRoot(), "test.mbtiles").getPath();
+        File export = new File(folder.getRoot(), "quadkey");
+        MBTilesGenerator.diskToMBTiles("testdata", mbtiles, "png", TileLayout.XYZ, false, JobContext.NONE);
+        MBTilesGenerator.mbtilesToDisk(mbtiles, "png", export.getPath(), TileLayout.QUADKEY, null, JobContext.NONE);
+
+        assertFalse(new File(export, ".png").exists());
+        assertTrue(new File(export, "3.png").isFile());
+    }
+
+    @Test
+    public void parseFromDisk() {
+        TileLayout.Tile tile = parse(TileLayout.ZYX, "14/9244/13377.png");
+        assertEquals(7139, tile.y);
+        tile = parse(TileLayout.AGS, "L05/R0000000A/C0000001f.jpg");
+        assertEquals(31, tile.x);
+        assertEquals(21, tile.y);
+        tile = parse(TileLayout.XYZ, "3/1/2.grid.json");
+        assertEquals(5, tile.y);
+    }
+
+    @Test
+    public void rejectsInvalidNames() {
+        TileLayout.Tile tile = new TileLayout.Tile();
+        assertFalse(TileLayout.XYZ.parseDirectory(0, "metadata", tile));
+        assertFalse(TileLayout.XYZ.parseFile("-1.png", 2, tile));
+        assertFalse(TileLayout.XYZ.parseFile("99999999999.png", 11, tile));
+        assertFalse(TileLayout.AGS.parseFile("Cxyz.png", 4, tile));
+        assertFalse(TileLayout.GWC.parseFile("12.png", 2, tile));
+        assertFalse(TileLayout.QUADKEY.parseFile("metadata.json", 8, tile));
+    }
+
+    @Test
+    public void registerAndLookup() {
+        assertSame(TileLayout.XYZ, TileLayout.forName("xyz"));
+        assertSame(TileLayout.TMS, TileLayout.forName(null));
+        assertSame(TileLayout.TMS, TileLayout.forName("unknown"));
+        TileLayout.register("custom", TileLayout.ZYX);
+        try {
+            assertSame(TileLayout.ZYX, TileLayout.forName("custom"));
+        } finally {
+            TileLayout.unregister("custom");
+        }
+        assertSame(TileLayout.TMS, TileLayout.forName("custom"));
+    }
+}